@@ -22,6 +22,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Random;
 
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 
@@ -86,8 +87,35 @@ public class Utilities {
 		}
     }
     
+    // digest() resets a MessageDigest, so each thread can keep reusing one
+    private static final ThreadLocal<MessageDigest> threadSha256 = new ThreadLocal<MessageDigest>();
+    
+    public static String sha256Hex(byte[] content) throws GentleDBException {
+    	MessageDigest sha256 = threadSha256.get();
+    	if (sha256 == null) {
+    		sha256 = sha256();
+    		threadSha256.set(sha256);
+    	}
+    	return hex(sha256.digest(content));
+    }
+    
+    private static final char[] HEX_DIGITS = IDENTIFIER_DIGITS.toCharArray();
+    
     public static String hex(byte[] byteArray) {
-    	return new String(Hex.encodeHex(byteArray));
+    	final char[] chars = new char[byteArray.length * 2];
+    	for (int i = 0; i < byteArray.length; i++) {
+    		chars[2 * i] = HEX_DIGITS[(byteArray[i] >> 4) & 0xf];
+    		chars[2 * i + 1] = HEX_DIGITS[byteArray[i] & 0xf];
+    	}
+    	return new String(chars);
+    }
+    
+    public static byte[] unhex(String hexString) throws GentleDBException {
+    	try {
+    		return Hex.decodeHex(hexString.toCharArray());
+    	} catch (DecoderException e) {
+    		throw new GentleDBException(e);
+    	}
     }
     
     public static void mkdir700(File directory) throws GentleDBException {
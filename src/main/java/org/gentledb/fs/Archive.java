@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+
+/**
+ * Sequential archive of a whole {@link GentleDB}, for moving a store between
+ * hosts in one pass instead of copying every file individually.
+ *
+ * The archive starts with the magic bytes "GDBA", a version byte and a flags
+ * byte.  The rest, optionally gzip-compressed, is a sequence of records: 'C'
+ * followed by a raw 32-byte content identifier, a long length and the content;
+ * 'P' followed by raw 32-byte pointer and content identifiers; and a final 'E'.
+ * All content records precede the pointer records.
+ */
+public class Archive {
+
+	private static final byte[] MAGIC = { 'G', 'D', 'B', 'A' };
+	private static final int VERSION = 1;
+	private static final int FLAG_COMPRESSED = 1;
+
+	private static final int CONTENT = 'C';
+	private static final int POINTER = 'P';
+	private static final int END = 'E';
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private GentleDB db;
+
+	public Archive(GentleDB db) {
+		this.db = db;
+	}
+
+	public static class Summary {
+
+		private long contentWritten;
+		private long contentSkipped;
+		private long pointers;
+		private long pointersSkipped;
+
+		public long getContentWritten() {
+			return contentWritten;
+		}
+
+		public long getContentSkipped() {
+			return contentSkipped;
+		}
+
+		public long getPointers() {
+			return pointers;
+		}
+
+		// pointers left out of an export because they were removed or did not hold a valid identifier
+		public long getPointersSkipped() {
+			return pointersSkipped;
+		}
+
+	}
+
+	/**
+	 * Writes the archive to stream.  The stream is flushed, but not closed.
+	 */
+	public Summary exportTo(java.io.OutputStream stream, boolean compress) throws GentleDBException {
+		final Summary summary = new Summary();
+		try {
+			stream.write(MAGIC);
+			stream.write(VERSION);
+			stream.write(compress ? FLAG_COMPRESSED : 0);
+			GZIPOutputStream gzip = null;
+			java.io.OutputStream body = stream;
+			if (compress) {
+				gzip = new GZIPOutputStream(stream, BUFFER_SIZE);
+				body = gzip;
+			}
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body, BUFFER_SIZE));
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			exportInlineContent(out, summary);
+			exportContent(out, db.getContentDir(), "", buffer, summary);
+			exportPointers(out, db.getPointerDir(), "", summary);
+			out.write(END);
+			out.flush();
+			if (gzip != null) {
+				gzip.finish();
+			}
+			stream.flush();
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		}
+		return summary;
+	}
+
+	/**
+	 * Reads an archive from stream into the database, skipping content that
+	 * is already present.  Content that does not hash to its identifier is
+	 * rejected and aborts the import.
+	 */
+	public Summary importFrom(java.io.InputStream stream) throws GentleDBException {
+		final Summary summary = new Summary();
+		try {
+			final byte[] magic = new byte[MAGIC.length];
+			new DataInputStream(stream).readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new GentleDBException("Not a GentleDB archive");
+			}
+			final int version = stream.read();
+			if (version != VERSION) {
+				throw new GentleDBException("Unsupported archive version: " + version);
+			}
+			final int flags = stream.read();
+			if (flags < 0) {
+				throw new GentleDBException("Truncated archive");
+			}
+			java.io.InputStream body = stream;
+			if ((flags & FLAG_COMPRESSED) != 0) {
+				body = new GZIPInputStream(stream, BUFFER_SIZE);
+			}
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(body, BUFFER_SIZE));
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			final byte[] id = new byte[32];
+			for (;;) {
+				final int type = in.read();
+				if (type == CONTENT) {
+					in.readFully(id);
+					importContent(in, Utilities.hex(id), in.readLong(), buffer, summary);
+				} else if (type == POINTER) {
+					in.readFully(id);
+					final String pointerId = Utilities.hex(id);
+					in.readFully(id);
+					db.put(pointerId, Utilities.hex(id));
+					summary.pointers++;
+				} else if (type == END) {
+					break;
+				} else if (type < 0) {
+					throw new GentleDBException("Truncated archive");
+				} else {
+					throw new GentleDBException("Invalid archive record type: " + type);
+				}
+			}
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		}
+		return summary;
+	}
+
+	private void importContent(DataInputStream in, String contentId, long length, byte[] buffer, Summary summary) throws IOException, GentleDBException {
+		if (length < 0) {
+			throw new GentleDBException("Invalid content length: " + length);
+		}
+		if (db.hasContent(contentId)) {
+			IOUtils.skipFully(in, length);
+			summary.contentSkipped++;
+			return;
+		}
+		final GentleDB.OutputStream out = db.addStream();
+		out.expectContentId(contentId);
+		try {
+			while (length > 0) {
+				final int n = (int) Math.min(buffer.length, length);
+				in.readFully(buffer, 0, n);
+				out.write(buffer, 0, n);
+				length -= n;
+			}
+		} catch (IOException e) {
+			IOUtils.closeQuietly(out);
+			throw e;
+		}
+		out.close();
+		summary.contentWritten++;
+	}
+
+	private static String[] sortedList(File directory) throws GentleDBException {
+		final String[] names = directory.list();
+		if (names == null) {
+			throw new GentleDBException("Could not list '" + directory.getPath() + "'");
+		}
+		Arrays.sort(names);
+		return names;
+	}
+
+	private void exportInlineContent(DataOutputStream out, Summary summary) throws IOException, GentleDBException {
+		final InlineStore inlineStore = db.findInlineStore();
+		if (inlineStore == null)
+			return;
+		for (final String contentId : inlineStore.contentIds()) {
+			final byte[] content = inlineStore.get(contentId);
+			if (content == null)
+				continue;
+			out.write(CONTENT);
+			out.write(Utilities.unhex(contentId));
+			out.writeLong(content.length);
+			out.write(content);
+			summary.contentWritten++;
+		}
+	}
+
+	private void exportContent(DataOutputStream out, File directory, String prefix, byte[] buffer, Summary summary) throws IOException, GentleDBException {
+		for (final String name : sortedList(directory)) {
+			final String id = prefix + name;
+			final File file = new File(directory, name);
+			if (file.isDirectory()) {
+				exportContent(out, file, id, buffer, summary);
+			} else if (Utilities.isIdentifierValid(id)) {
+				final FileInputStream in = new FileInputStream(file);
+				try {
+					final long length = in.getChannel().size();
+					out.write(CONTENT);
+					out.write(Utilities.unhex(id));
+					out.writeLong(length);
+					long remaining = length;
+					int n;
+					while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+						out.write(buffer, 0, n);
+						remaining -= n;
+					}
+					if (remaining != 0) {
+						throw new GentleDBException("Content changed during export: " + id);
+					}
+				} finally {
+					IOUtils.closeQuietly(in);
+				}
+				summary.contentWritten++;
+			}
+		}
+	}
+
+	private void exportPointers(DataOutputStream out, File directory, String prefix, Summary summary) throws IOException, GentleDBException {
+		for (final String name : sortedList(directory)) {
+			final String id = prefix + name;
+			final File file = new File(directory, name);
+			if (file.isDirectory()) {
+				exportPointers(out, file, id, summary);
+			} else if (Utilities.isIdentifierValid(id)) {
+				String contentId;
+				try {
+					contentId = db.get(id);
+				} catch (GentleDBException e) {
+					if (file.exists())
+						throw e;
+					contentId = null;  // removed since we listed the directory
+				}
+				// an empty or partial pointer file may be caught in the middle of a put()
+				if (!Utilities.isIdentifierValid(contentId)) {
+					summary.pointersSkipped++;
+					continue;
+				}
+				out.write(POINTER);
+				out.write(Utilities.unhex(id));
+				out.write(Utilities.unhex(contentId));
+				summary.pointers++;
+			}
+		}
+	}
+
+}
@@ -18,15 +18,17 @@ package org.gentledb.fs;
 
 import static org.gentledb.Utilities.sha256;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.gentledb.Utilities;
@@ -34,10 +36,20 @@ import org.gentledb.Utilities.GentleDBException;
 
 public class GentleDB implements org.gentledb.interfaces.GentleDB {
 	
+	// inline records are read whole into memory and share one map of at most 2 GB
+	private static final int MAX_INLINE_THRESHOLD = 64 * 1024;
+	
 	private File directory;
 	private File contentDir;
 	private File pointerDir;
 	private File tmpDir;
+	private FanOut contentFanOut;
+	private FanOut pointerFanOut;
+	private String tmpPrefix;
+	private AtomicLong tmpCounter;
+	private File inlineFile;
+	private volatile InlineStore inlineStore;
+	private int inlineThreshold;
 	
 	public GentleDB(File directory) throws GentleDBException {
 		try {
@@ -53,7 +65,13 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 				Utilities.mkdir700(dir);
 			}
 		}
-		
+		contentFanOut = new FanOut(contentDir);
+		pointerFanOut = new FanOut(pointerDir);
+		tmpPrefix = Utilities.random().substring(0, 16) + "-";
+		tmpCounter = new AtomicLong();
+		inlineFile = new File(this.directory, "inline_db");
+		openInlineStore(false);
+		inlineThreshold = 0;
 	}
 	
 	public GentleDB(String directory) throws GentleDBException {
@@ -68,28 +86,99 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 		return directory;
 	}
 	
-	private static File idToPath(File directory, String id, boolean createDir) throws GentleDBException {
-		final Matcher matcher = Pattern.compile("(..?)(.?.?)(.?.?.?)(.*)").matcher(id);
-		if (!matcher.matches()) {
-			throw new GentleDBException("Invalid identifier: '" + id + "'");
-		}
-		for (int i = 1; i < matcher.groupCount(); i++) {
-			if (matcher.group(i).length() == 0)
-				break;
-			directory = new File(directory, matcher.group(i));
-			if (createDir && !directory.exists()) {
-				Utilities.mkdir700(directory);
-			}
+	public int getInlineThreshold() {
+		return inlineThreshold;
+	}
+	
+	/**
+	 * Content shorter than inlineThreshold bytes is kept in a single shared
+	 * file instead of a file of its own.  0, the default, turns this off; at
+	 * most 64 KB is allowed.  Content stored inline before remains readable
+	 * either way.
+	 *
+	 * Instances in any number of processes may still share a directory: they
+	 * coordinate through a lock on the shared file and see each other's
+	 * content as soon as it is added.  This relies on file locks and shared
+	 * memory mappings working across processes, which network file systems
+	 * may not provide; do not share an inline store over NFS and the like.
+	 */
+	public void setInlineThreshold(int inlineThreshold) throws GentleDBException {
+		if (inlineThreshold > MAX_INLINE_THRESHOLD) {
+			throw new IllegalArgumentException("inlineThreshold too large: " + inlineThreshold);
+		}
+		if (inlineThreshold > 0) {
+			openInlineStore(true);
+		}
+		this.inlineThreshold = Math.max(inlineThreshold, 0);
+	}
+	
+	// null unless inline_db existed when this instance was created or last looked for it.  Only
+	// lookups that miss a content file look again, so the common paths need no extra stat; content
+	// another instance stores inline after that may meanwhile be stored again as a file.
+	InlineStore getInlineStore() {
+		return inlineStore;
+	}
+	
+	InlineStore findInlineStore() throws GentleDBException {
+		final InlineStore store = inlineStore;
+		if (store != null)
+			return store;
+		return openInlineStore(false);
+	}
+	
+	private synchronized InlineStore openInlineStore(boolean create) throws GentleDBException {
+		if (inlineStore == null && (create || inlineFile.exists())) {
+			inlineStore = new InlineStore(inlineFile);
 		}
-		return new File(directory, matcher.group(matcher.groupCount()));
+		return inlineStore;
+	}
+	
+	File getContentDir() {
+		return contentDir;
+	}
+	
+	File getPointerDir() {
+		return pointerDir;
 	}
 	
 	private File getContentFile(String contentId, boolean createDir) throws GentleDBException {
-		return idToPath(contentDir, contentId, createDir);
+		return contentFanOut.idToPath(contentId, createDir);
 	}
 	
 	private File getPointerFile(String pointerId, boolean createDir) throws GentleDBException {
-		return idToPath(pointerDir, pointerId, createDir);
+		return pointerFanOut.idToPath(pointerId, createDir);
+	}
+	
+	// returns false if streamFile could not be moved, in case file exists already
+	private boolean renameToContentFile(File streamFile, File file, String contentId) throws GentleDBException {
+		if (streamFile.renameTo(file))
+			return true;
+		if (file.getParentFile().exists())
+			return false;
+		// its directory was removed since we looked it up
+		contentFanOut.forget(contentId);
+		return streamFile.renameTo(getContentFile(contentId, true));
+	}
+	
+	// unique within tmpDir, without asking SecureRandom for every file
+	File newTmpFile() {
+		return new File(tmpDir, tmpPrefix + tmpCounter.incrementAndGet());
+	}
+	
+	boolean hasContent(String contentId) throws GentleDBException {
+		final InlineStore inlineStore = getInlineStore();
+		if (inlineStore != null && inlineStore.contains(contentId))
+			return true;
+		return getContentFile(contentId, false).exists();
+	}
+	
+	// returns false if content should rather go into a file of its own
+	private boolean addInline(String contentId, byte[] content, int length) throws GentleDBException {
+		if (length >= inlineThreshold)
+			return false;
+		if (getContentFile(contentId, false).exists())
+			return true;
+		return inlineStore.add(contentId, content, 0, length);
 	}
 	
 	private String[] findPartialId(File directory, String partialId) {
@@ -106,20 +195,51 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 	}
 
 	public String addArray(byte[] content) throws GentleDBException {
-		final OutputStream stream = addStream();
+		final String contentId = Utilities.sha256Hex(content);
+		final InlineStore inlineStore = getInlineStore();
+		if (inlineStore != null && (inlineStore.contains(contentId) || addInline(contentId, content, content.length))) {
+			return contentId;
+		}
+		final File file = getContentFile(contentId, true);
+		if (file.exists()) {  // we do not overwrite existing content
+			return contentId;
+		}
+		final File streamFile = newTmpFile();
+		FileOutputStream stream;
 		try {
-			IOUtils.write(content, stream);
-		} catch (IOException e) {
+			stream = new FileOutputStream(streamFile);
+		} catch (FileNotFoundException e) {
 			throw new GentleDBException(e);
-		} finally {
+		}
+		// chmod 0400, the stream we already opened stays writable
+		streamFile.setReadable(false, false);
+		streamFile.setReadable(true, true);
+		streamFile.setWritable(false, false);
+		try {
+			stream.write(content);
+			stream.close();
+		} catch (IOException e) {
 			IOUtils.closeQuietly(stream);
+			streamFile.delete();
+			throw new GentleDBException(e);
+		}
+		if (!renameToContentFile(streamFile, file, contentId)) {
+			streamFile.delete();
+			if (!file.exists()) {
+				throw new GentleDBException("Could not move '" + streamFile.getPath() + "' to '" + file.getPath() + "'");
+			}
 		}
-		final String contentId = stream.getContentId();
 		return contentId;
 	}
 
 	public byte[] getArray(String contentId) throws GentleDBException {
 		Utilities.validateIdentifier(contentId);
+		final InlineStore inlineStore = getInlineStore();
+		if (inlineStore != null) {
+			final byte[] content = inlineStore.get(contentId);
+			if (content != null)
+				return content;
+		}
 		final InputStream stream = getStream(contentId);
 		try {
 			return IOUtils.toByteArray(stream);
@@ -216,15 +336,31 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 		private GentleDB db;
 		private MessageDigest sha256;
 		private String contentId;
+		private String expectedContentId;
 		private File streamFile;
 		private FileOutputStream stream;
+		// content is held here until it reaches the inline threshold
+		private int inlineThreshold;
+		private byte[] inlineContent;
+		private int inlineLength;
 		private boolean isOpen;
 		
 		public OutputStream(GentleDB db) throws GentleDBException {
 			super();
 			this.db = db;
 			sha256 = sha256();
-			streamFile = new File(db.tmpDir, Utilities.random());
+			inlineThreshold = db.inlineThreshold;
+			if (inlineThreshold > 0) {
+				inlineContent = new byte[Math.min(inlineThreshold, 256)];
+				inlineLength = 0;
+			} else {
+				openStreamFile();
+			}
+			isOpen = true;
+		}
+		
+		private void openStreamFile() throws GentleDBException {
+			streamFile = db.newTmpFile();
 			try {
 				stream = new FileOutputStream(streamFile);
 			} catch (FileNotFoundException e) {
@@ -236,24 +372,59 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 			streamFile.setWritable(false, false);
 			streamFile.setWritable(true, true);
 			streamFile.setExecutable(false, false);
-			isOpen = true;
+		}
+		
+		// moves the content held so far into a file once it is too long to go inline
+		private void spill() throws IOException {
+			try {
+				openStreamFile();
+			} catch (GentleDBException e) {
+				throw new IOException(e);
+			}
+			stream.write(inlineContent, 0, inlineLength);
+			inlineContent = null;
+		}
+		
+		// makes room for len more bytes, or returns false if they do not fit below the threshold
+		private boolean reserve(int len) {
+			final long length = (long) inlineLength + len;
+			if (length >= inlineThreshold)
+				return false;
+			if (length > inlineContent.length) {
+				inlineContent = Arrays.copyOf(inlineContent, (int) Math.max(length, Math.min(2L * inlineContent.length, inlineThreshold)));
+			}
+			return true;
 		}
 
 		@Override
 		public void write(int b) throws IOException {
 			sha256.update((byte) b);
+			if (stream == null) {
+				if (reserve(1)) {
+					inlineContent[inlineLength++] = (byte) b;
+					return;
+				}
+				spill();
+			}
 			stream.write(b);
 		}
 
 		@Override
 		public void write(byte[] b) throws IOException {
-			sha256.update(b);  // sha256.digest();
-			stream.write(b);
+			write(b, 0, b.length);
 		}
 
 		@Override
 		public void write(byte[] b, int off, int len) throws IOException {
 			sha256.update(b, off, len);
+			if (stream == null) {
+				if (reserve(len)) {
+					System.arraycopy(b, off, inlineContent, inlineLength, len);
+					inlineLength += len;
+					return;
+				}
+				spill();
+			}
 			stream.write(b, off, len);
 		}
 
@@ -269,15 +440,35 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 			} catch (GentleDBException e) {
 				throw new IOException(e);
 			}
+			if (expectedContentId != null && !expectedContentId.equals(contentId)) {
+				if (streamFile != null) {
+					streamFile.delete();
+				}
+				throw new IOException("Content hash mismatch: expected " + expectedContentId + ", got " + contentId);
+			}
+			if (stream == null) {
+				try {
+					if (db.inlineStore.contains(contentId) || db.addInline(contentId, inlineContent, inlineLength))
+						return;
+				} catch (GentleDBException e) {
+					throw new IOException(e);
+				}
+				spill();
+				IOUtils.closeQuietly(stream);
+			}
 			File file;
 			try {
-				file = db.getContentFile(contentId, true);
+				file = db.hasContent(contentId) ? null : db.getContentFile(contentId, true);
 			} catch (GentleDBException e) {
 				throw new IOException(e);
 			}
-			if (!file.exists()) {
+			if (file != null && !file.exists()) {
 				streamFile.setWritable(false, false);  // chmod 0400
-				streamFile.renameTo(file);
+				try {
+					db.renameToContentFile(streamFile, file, contentId);
+				} catch (GentleDBException e) {
+					throw new IOException(e);
+				}
 			} else {  // we do not overwrite existing content
 				if (!streamFile.delete()) {
 					String filePath;
@@ -305,17 +496,121 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 			}
 			return contentId;
 		}
+		
+		// close() discards the content instead of storing it if it does not hash to contentId
+		void expectContentId(String contentId) {
+			expectedContentId = contentId;
+		}
+	}
+	
+	private static class FanOut {
+		
+		private static final int[] SEGMENT_ENDS = { 2, 4, 7 };
+		
+		private File root;
+		// second-level directories known to exist, indexed by the first four hex digits
+		private File[] directories;
+		
+		public FanOut(File root) {
+			this.root = root;
+			directories = new File[1 << 16];
+		}
+		
+		// root/ab/cd/efg/hij...
+		public File idToPath(String id, boolean createDir) throws GentleDBException {
+			if (id.length() == 0) {
+				throw new GentleDBException("Invalid identifier: '" + id + "'");
+			}
+			final int index = prefixIndex(id);
+			try {
+				return idToPath(id, createDir, index);
+			} catch (GentleDBException e) {
+				if (!createDir || index < 0 || directories[index] == null)
+					throw e;
+				// the cached directory is gone, removed by hand or by a restore
+				directories[index] = null;
+				return idToPath(id, createDir, index);
+			}
+		}
+		
+		// forgets that the directories of id exist, after they turned out not to
+		public void forget(String id) {
+			final int index = prefixIndex(id);
+			if (index >= 0) {
+				directories[index] = null;
+			}
+		}
+		
+		private File idToPath(String id, boolean createDir, int index) throws GentleDBException {
+			File directory = root;
+			int start = 0;
+			int level = 0;
+			if (index >= 0 && directories[index] != null) {
+				directory = directories[index];
+				start = SEGMENT_ENDS[1];
+				level = 2;
+			}
+			for (; level < SEGMENT_ENDS.length; level++) {
+				final int end = Math.min(SEGMENT_ENDS[level], id.length());
+				if (end == start)
+					break;
+				directory = new File(directory, id.substring(start, end));
+				if (createDir) {
+					if (!directory.exists()) {
+						Utilities.mkdir700(directory);
+					}
+					if (level == 1 && index >= 0) {
+						directories[index] = directory;
+					}
+				}
+				start = end;
+			}
+			return new File(directory, id.substring(start));
+		}
+		
+		private static int prefixIndex(String id) {
+			if (id.length() < SEGMENT_ENDS[1])
+				return -1;
+			int index = 0;
+			for (int i = 0; i < SEGMENT_ENDS[1]; i++) {
+				final char c = id.charAt(i);
+				if (c >= '0' && c <= '9') {
+					index = (index << 4) | (c - '0');
+				} else if (c >= 'a' && c <= 'f') {
+					index = (index << 4) | (c - 'a' + 10);
+				} else {
+					return -1;
+				}
+			}
+			return index;
+		}
 	}
 	
 	public class InputStream extends java.io.InputStream implements org.gentledb.interfaces.InputStream {
 		
-		private FileInputStream stream;
+		private java.io.InputStream stream;
 		
 		public InputStream(GentleDB db, String contentId) throws GentleDBException {
 			super();
+			InlineStore inlineStore = db.getInlineStore();
+			if (inlineStore != null) {
+				final byte[] content = inlineStore.get(contentId);
+				if (content != null) {
+					stream = new ByteArrayInputStream(content);
+					return;
+				}
+			}
 			try {
 				stream = new FileInputStream(db.getContentFile(contentId, false));
 			} catch (FileNotFoundException e) {
+				// another instance may have started storing content inline since
+				if (inlineStore == null && (inlineStore = db.findInlineStore()) != null) {
+					final byte[] content = inlineStore.get(contentId);
+					if (content != null) {
+						stream = new ByteArrayInputStream(content);
+						return;
+					}
+				}
 				throw new GentleDBException(e);
 			}
 		}
@@ -334,6 +629,18 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 		public int read(byte[] b, int off, int len) throws IOException {
 			return stream.read(b, off, len);
 		}
+		
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+		
+		// null for content stored inline
+		public FileChannel getChannel() {
+			if (stream instanceof FileInputStream)
+				return ((FileInputStream) stream).getChannel();
+			return null;
+		}
 	}
 	
 }
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+
+/**
+ * Keeps small blobs of a {@link GentleDB} together in one memory-mapped file
+ * instead of one file each.
+ *
+ * The file is a sequence of records: a type byte, the raw 32-byte content
+ * identifier, an int length and the content.  A zero type byte marks the end
+ * of the data; the file is grown ahead of it in zero-filled steps.  An append
+ * writes the record and the END byte after it before it publishes the
+ * record's type byte, so a record cut short by a crash is never read, and is
+ * cleared when the file is next opened.  Removal appends a tombstone record
+ * with no content.  Neither the removed record nor its tombstone is ever
+ * reclaimed; only the {@link Scrubber} removes content, so this stays small.
+ *
+ * The index is an open-addressing table of record offsets, rebuilt by one
+ * scan of the file on open.  Identifiers are compared in the mapped file
+ * itself, so the heap holds 8 to 16 bytes per record.
+ *
+ * Any number of instances, in this and other processes, may share the file.
+ * Appends and scans of records appended by others happen under an exclusive
+ * lock on the file; a non-zero byte where an instance expects the END byte
+ * tells it that others have appended since it last looked.
+ */
+class InlineStore {
+
+	private static final byte END = 0;
+	private static final byte CONTENT = 1;
+	private static final byte TOMBSTONE = 2;
+
+	private static final int ID_LENGTH = 32;
+	private static final int HEADER_LENGTH = 1 + ID_LENGTH + 4;
+
+	private static final int MIN_CAPACITY = 1024 * 1024;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE;
+
+	// file locks are held per process, so instances within one JVM also need a monitor per file
+	private static final Map<String, Object> processLocks = new HashMap<String, Object>();
+
+	private File file;
+	private FileChannel channel;
+	private Object processLock;
+	private MappedByteBuffer map;
+	private int size;
+	// where the identifier of each record starts, which is its offset + 1, or 0 for a free slot; linear probing
+	private int[] slots;
+	private int count;
+	// identifier being looked up, decoded
+	private byte[] key;
+
+	public InlineStore(File file) throws GentleDBException {
+		this.file = file;
+		final boolean isNew = !file.exists();
+		try {
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			processLock = processLock(file.getCanonicalPath());
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		}
+		if (isNew) {
+			// chmod 0600
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+			file.setExecutable(false, false);
+		}
+		slots = new int[1024];
+		count = 0;
+		key = new byte[ID_LENGTH];
+		size = 0;
+		synchronized (processLock) {
+			final FileLock lock = lock();
+			try {
+				map(Math.max(MIN_CAPACITY, (int) Math.min(channel.size(), MAX_CAPACITY)));
+				scan();
+				clearPartialRecord();
+			} catch (IOException e) {
+				throw new GentleDBException(e);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	private static Object processLock(String path) {
+		synchronized (processLocks) {
+			Object lock = processLocks.get(path);
+			if (lock == null) {
+				lock = new Object();
+				processLocks.put(path, lock);
+			}
+			return lock;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized boolean contains(String contentId) throws GentleDBException {
+		refreshIfStale();
+		return slots[find(decode(contentId))] != 0;
+	}
+
+	public synchronized byte[] get(String contentId) throws GentleDBException {
+		refreshIfStale();
+		final int slot = slots[find(decode(contentId))];
+		if (slot == 0)
+			return null;
+		final int offset = slot - 1;
+		final byte[] content = new byte[map.getInt(offset + 1 + ID_LENGTH)];
+		map.position(offset + HEADER_LENGTH);
+		map.get(content);
+		return content;
+	}
+
+	/**
+	 * Returns false, storing nothing, if the store has no room left.
+	 */
+	public synchronized boolean add(String contentId, byte[] content, int offset, int length) throws GentleDBException {
+		synchronized (processLock) {
+			final FileLock lock = lock();
+			try {
+				scan();
+				final int index = find(decode(contentId));
+				if (slots[index] != 0)
+					return true;
+				final int recordOffset = size;
+				if (!append(CONTENT, content, offset, length))
+					return false;
+				insert(index, recordOffset);
+				return true;
+			} catch (IOException e) {
+				throw new GentleDBException(e);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	public synchronized void remove(String contentId) throws GentleDBException {
+		synchronized (processLock) {
+			final FileLock lock = lock();
+			try {
+				scan();
+				final int index = find(decode(contentId));
+				if (slots[index] == 0)
+					return;
+				if (!append(TOMBSTONE, null, 0, 0)) {
+					throw new GentleDBException("Inline store '" + file.getPath() + "' is full");
+				}
+				delete(index);
+			} catch (IOException e) {
+				throw new GentleDBException(e);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	public synchronized SortedSet<String> contentIds() throws GentleDBException {
+		refreshIfStale();
+		final SortedSet<String> contentIds = new TreeSet<String>();
+		final byte[] id = new byte[ID_LENGTH];
+		for (final int slot : slots) {
+			if (slot != 0) {
+				map.position(slot);
+				map.get(id);
+				contentIds.add(Utilities.hex(id));
+			}
+		}
+		return contentIds;
+	}
+
+	// into key, without the garbage of Utilities.unhex
+	private byte[] decode(String contentId) throws GentleDBException {
+		if (contentId.length() != 2 * ID_LENGTH) {
+			throw new GentleDBException("Invalid identifier: " + contentId);
+		}
+		for (int i = 0; i < ID_LENGTH; i++) {
+			final int high = Character.digit(contentId.charAt(2 * i), 16);
+			final int low = Character.digit(contentId.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new GentleDBException("Invalid identifier: " + contentId);
+			}
+			key[i] = (byte) (high << 4 | low);
+		}
+		return key;
+	}
+
+	// index of the slot holding id, or of the free slot where it belongs
+	private int find(byte[] id) {
+		final int mask = slots.length - 1;
+		// identifiers are SHA-256 hashes, so their first bytes are as good a hash as any
+		int index = (id[0] << 24 | (id[1] & 0xff) << 16 | (id[2] & 0xff) << 8 | (id[3] & 0xff)) & mask;
+		for (;;) {
+			final int slot = slots[index];
+			if (slot == 0 || matches(slot, id))
+				return index;
+			index = (index + 1) & mask;
+		}
+	}
+
+	private boolean matches(int idOffset, byte[] id) {
+		for (int i = 0; i < ID_LENGTH; i++) {
+			if (map.get(idOffset + i) != id[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void insert(int index, int offset) {
+		slots[index] = offset + 1;
+		count++;
+		if (2 * count > slots.length) {
+			final int[] oldSlots = slots;
+			slots = new int[2 * oldSlots.length];
+			final byte[] id = new byte[ID_LENGTH];
+			for (final int slot : oldSlots) {
+				if (slot != 0) {
+					map.position(slot);
+					map.get(id);
+					slots[find(id)] = slot;
+				}
+			}
+		}
+	}
+
+	// closes the gap behind it, so that lookups need no markers for removed slots
+	private void delete(int index) {
+		final int mask = slots.length - 1;
+		slots[index] = 0;
+		count--;
+		final byte[] id = new byte[ID_LENGTH];
+		for (int next = (index + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+			final int slot = slots[next];
+			slots[next] = 0;
+			map.position(slot);
+			map.get(id);
+			slots[find(id)] = slot;
+		}
+	}
+
+	private FileLock lock() throws GentleDBException {
+		try {
+			return channel.lock();
+		} catch (IOException e) {
+			throw new GentleDBException("Could not lock '" + file.getPath() + "'", e);
+		}
+	}
+
+	private void release(FileLock lock) throws GentleDBException {
+		try {
+			lock.release();
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		}
+	}
+
+	// picks up records appended by other instances since we last looked
+	private void refreshIfStale() throws GentleDBException {
+		if (size < map.capacity() && map.get(size) == END)
+			return;
+		synchronized (processLock) {
+			final FileLock lock = lock();
+			try {
+				scan();
+			} catch (IOException e) {
+				throw new GentleDBException(e);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	// appends a record for the identifier in key
+	private boolean append(byte type, byte[] content, int offset, int length) throws IOException {
+		final long end = (long) size + HEADER_LENGTH + length + 1;  // keep room for the END byte
+		if (end > MAX_CAPACITY)
+			return false;
+		if (end > map.capacity()) {
+			map((int) Math.min(Math.max(end, 2L * map.capacity()), MAX_CAPACITY));
+		}
+		final int newSize = size + HEADER_LENGTH + length;
+		map.position(size + 1);
+		map.put(key);
+		map.putInt(length);
+		if (length > 0) {
+			map.put(content, offset, length);
+		}
+		map.put(newSize, END);
+		map.put(size, type);
+		size = newSize;
+		return true;
+	}
+
+	// maps the first capacity bytes of the file, growing it if needed
+	private void map(int capacity) throws IOException {
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	// reads the records from size on, under the file lock
+	private void scan() throws IOException, GentleDBException {
+		final long fileSize = Math.min(channel.size(), MAX_CAPACITY);
+		if (fileSize > map.capacity()) {  // grown by another instance
+			map((int) fileSize);
+		}
+		final byte[] id = new byte[ID_LENGTH];
+		int offset = size;
+		while (offset + HEADER_LENGTH <= map.capacity()) {
+			final byte type = map.get(offset);
+			if (type == END)
+				break;
+			final int length = map.getInt(offset + 1 + ID_LENGTH);
+			if (length < 0 || (long) offset + HEADER_LENGTH + length > map.capacity() || (type != CONTENT && type != TOMBSTONE)) {
+				throw new GentleDBException("Corrupt inline store '" + file.getPath() + "' at offset " + offset);
+			}
+			map.position(offset + 1);
+			map.get(id);
+			final int index = find(id);
+			if (type == CONTENT) {
+				if (slots[index] == 0) {
+					insert(index, offset);
+				} else {
+					slots[index] = offset + 1;
+				}
+			} else if (slots[index] != 0) {
+				delete(index);
+			}
+			offset += HEADER_LENGTH + length;
+		}
+		size = offset;
+	}
+
+	// zeroes what an append cut short by a crash left behind the END byte
+	private void clearPartialRecord() {
+		long end = (long) size + HEADER_LENGTH;
+		if (end <= map.capacity()) {
+			end += Math.max(map.getInt(size + 1 + ID_LENGTH), 0);
+		}
+		end = Math.min(end, map.capacity());
+		for (int i = size; i < end; i++) {
+			if (map.get(i) != END) {
+				map.put(i, END);
+			}
+		}
+	}
+
+}
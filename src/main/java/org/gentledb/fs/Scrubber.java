@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import static org.gentledb.Utilities.sha256;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+
+/**
+ * Re-hashes the content stored in a {@link GentleDB} and moves blobs whose
+ * content no longer matches their identifier into the quarantine directory.
+ *
+ * Progress is checkpointed after every batch, so an interrupted scrub resumes
+ * where it left off the next time {@link #scrub()} is called.  Content stored
+ * inline is checked in one go at the start of each pass.
+ */
+public class Scrubber {
+
+	public interface Listener {
+
+		public void verified(String contentId, long size);
+		public void corrupt(String contentId, String actualId, File quarantineFile);
+		public void failed(String contentId, GentleDBException e);
+		public void checkpoint(String contentId, long scrubbed);
+
+	}
+
+	private static final int BATCH_SIZE = 256;
+	private static final long MAP_SIZE = 64L * 1024 * 1024;
+	private static final int SLICE_SIZE = 1024 * 1024;
+
+	private GentleDB db;
+	private Listener listener;
+	private File stateFile;
+	private File quarantineDir;
+	private int threads;
+	private long maxBytesPerSecond;
+
+	private long startNanos;
+	private long bytesHashed;
+
+	public Scrubber(GentleDB db, Listener listener) {
+		this.db = db;
+		this.listener = listener;
+		stateFile = new File(db.getDirectory(), "scrub_state");
+		quarantineDir = new File(db.getDirectory(), "quarantine");
+		threads = Runtime.getRuntime().availableProcessors();
+		maxBytesPerSecond = 0;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	// 0 means unlimited
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	public File getQuarantineDirectory() {
+		return quarantineDir;
+	}
+
+	/**
+	 * Scrubs all content after the last checkpoint and returns the number of
+	 * blobs checked by this call.  The checkpoint is removed once the whole
+	 * store has been covered, so the next call starts a fresh pass.
+	 */
+	public long scrub() throws GentleDBException {
+		final String resumeAfter = readState();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		synchronized (this) {
+			startNanos = System.nanoTime();
+			bytesHashed = 0;
+		}
+		final Walk walk = new Walk(executor);
+		try {
+			if (resumeAfter == null) {
+				walk.scrubbed += scrubInline();
+			}
+			walk.walk(db.getContentDir(), "", resumeAfter);
+			walk.flush();
+		} finally {
+			executor.shutdownNow();
+		}
+		deleteState();
+		return walk.scrubbed;
+	}
+
+	public void reset() throws GentleDBException {
+		deleteState();
+	}
+
+	private long scrubInline() throws GentleDBException {
+		final InlineStore inlineStore = db.findInlineStore();
+		if (inlineStore == null)
+			return 0;
+		long scrubbed = 0;
+		for (final String contentId : inlineStore.contentIds()) {
+			final byte[] content = inlineStore.get(contentId);
+			if (content == null)
+				continue;
+			try {
+				throttle(content.length);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GentleDBException(e);
+			}
+			final String actualId = Utilities.sha256Hex(content);
+			if (actualId.equals(contentId)) {
+				listener.verified(contentId, content.length);
+			} else {
+				try {
+					final File quarantineFile = quarantine(content, contentId);
+					inlineStore.remove(contentId);
+					listener.corrupt(contentId, actualId, quarantineFile);
+				} catch (GentleDBException e) {
+					listener.failed(contentId, e);
+				}
+			}
+			scrubbed++;
+		}
+		return scrubbed;
+	}
+
+	private String readState() throws GentleDBException {
+		if (!stateFile.exists())
+			return null;
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(stateFile);
+			final String contentId = IOUtils.toString(stream, "utf-8").trim();
+			return Utilities.isIdentifierValid(contentId) ? contentId : null;
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+	}
+
+	private void writeState(String contentId) throws GentleDBException {
+		final File file = db.newTmpFile();
+		FileOutputStream stream = null;
+		try {
+			stream = new FileOutputStream(file);
+			IOUtils.write(contentId, stream, "utf-8");
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+		// replaces the old state in one step where the platform can, so a crash leaves one or the other
+		if (!file.renameTo(stateFile)) {
+			deleteState();
+			if (!file.renameTo(stateFile)) {
+				file.delete();
+				throw new GentleDBException("Could not write '" + stateFile.getPath() + "'");
+			}
+		}
+	}
+
+	private void deleteState() throws GentleDBException {
+		if (stateFile.exists() && !stateFile.delete()) {
+			throw new GentleDBException("Could not delete '" + stateFile.getPath() + "'");
+		}
+	}
+
+	private void throttle(long bytes) throws InterruptedException {
+		if (maxBytesPerSecond <= 0)
+			return;
+		long waitNanos;
+		synchronized (this) {
+			bytesHashed += bytes;
+			waitNanos = startNanos + bytesHashed * 1000000000L / maxBytesPerSecond - System.nanoTime();
+		}
+		if (waitNanos > 0) {
+			Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+		}
+	}
+
+	private String hash(File file) throws IOException, GentleDBException, InterruptedException {
+		final MessageDigest sha256 = sha256();
+		final FileInputStream stream = new FileInputStream(file);
+		try {
+			final FileChannel channel = stream.getChannel();
+			final long size = channel.size();
+			for (long position = 0; position < size; position += MAP_SIZE) {
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+				while (buffer.hasRemaining()) {
+					final int length = Math.min(SLICE_SIZE, buffer.remaining());
+					final ByteBuffer slice = buffer.slice();
+					slice.limit(length);
+					throttle(length);
+					sha256.update(slice);
+					buffer.position(buffer.position() + length);
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+		return Utilities.hex(sha256.digest());
+	}
+
+	private File quarantineTarget(String contentId) throws GentleDBException {
+		if (!quarantineDir.exists()) {
+			Utilities.mkdir700(quarantineDir);
+		}
+		// keep what earlier passes quarantined under the same identifier
+		File target = new File(quarantineDir, contentId);
+		for (int i = 1; target.exists(); i++) {
+			target = new File(quarantineDir, contentId + "." + i);
+		}
+		return target;
+	}
+
+	private File quarantine(byte[] content, String contentId) throws GentleDBException {
+		final File target = quarantineTarget(contentId);
+		FileOutputStream stream = null;
+		try {
+			stream = new FileOutputStream(target);
+			stream.write(content);
+		} catch (IOException e) {
+			throw new GentleDBException(e);
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+		return target;
+	}
+
+	private File quarantine(File file, String contentId) throws GentleDBException {
+		final File target = quarantineTarget(contentId);
+		if (!file.renameTo(target)) {
+			throw new GentleDBException("Could not move '" + file.getPath() + "' to '" + target.getPath() + "'");
+		}
+		return target;
+	}
+
+
+
+	private static class Outcome {
+
+		private String contentId;
+		private long size;
+		private String actualId;
+		private File quarantineFile;
+		private GentleDBException exception;
+
+	}
+
+	private class Check implements Callable<Outcome> {
+
+		private String contentId;
+		private File file;
+
+		public Check(String contentId, File file) {
+			this.contentId = contentId;
+			this.file = file;
+		}
+
+		@Override
+		public Outcome call() throws InterruptedException {
+			final Outcome outcome = new Outcome();
+			outcome.contentId = contentId;
+			outcome.size = file.length();
+			try {
+				final String actualId = hash(file);
+				if (!actualId.equals(contentId)) {
+					outcome.actualId = actualId;
+					outcome.quarantineFile = quarantine(file, contentId);
+				}
+			} catch (IOException e) {
+				outcome.exception = new GentleDBException(e);
+			} catch (GentleDBException e) {
+				outcome.exception = e;
+			}
+			return outcome;
+		}
+	}
+
+	private class Walk {
+
+		private ExecutorService executor;
+		private List<Check> batch;
+		private long scrubbed;
+
+		public Walk(ExecutorService executor) {
+			this.executor = executor;
+			batch = new ArrayList<Check>(BATCH_SIZE);
+			scrubbed = 0;
+		}
+
+		public void walk(File directory, String prefix, String resumeAfter) throws GentleDBException {
+			final String[] names = directory.list();
+			if (names == null) {
+				throw new GentleDBException("Could not list '" + directory.getPath() + "'");
+			}
+			Arrays.sort(names);
+			for (final String name : names) {
+				final String id = prefix + name;
+				final File file = new File(directory, name);
+				if (file.isDirectory()) {
+					// skip subtrees that lie entirely before the checkpoint
+					if (resumeAfter != null && id.length() <= resumeAfter.length()
+							&& id.compareTo(resumeAfter.substring(0, id.length())) < 0)
+						continue;
+					walk(file, id, resumeAfter);
+				} else {
+					if (!Utilities.isIdentifierValid(id))
+						continue;
+					if (resumeAfter != null && id.compareTo(resumeAfter) <= 0)
+						continue;
+					batch.add(new Check(id, file));
+					if (batch.size() >= BATCH_SIZE) {
+						flush();
+					}
+				}
+			}
+		}
+
+		public void flush() throws GentleDBException {
+			if (batch.isEmpty())
+				return;
+			final List<Future<Outcome>> futures;
+			try {
+				futures = executor.invokeAll(batch);
+				for (final Future<Outcome> future : futures) {
+					report(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GentleDBException(e);
+			} catch (ExecutionException e) {
+				throw new GentleDBException(e.getCause());
+			}
+			final String lastId = batch.get(batch.size() - 1).contentId;
+			scrubbed += batch.size();
+			batch.clear();
+			writeState(lastId);
+			listener.checkpoint(lastId, scrubbed);
+		}
+
+		private void report(Outcome outcome) {
+			if (outcome.exception != null) {
+				listener.failed(outcome.contentId, outcome.exception);
+			} else if (outcome.quarantineFile != null) {
+				listener.corrupt(outcome.contentId, outcome.actualId, outcome.quarantineFile);
+			} else {
+				listener.verified(outcome.contentId, outcome.size);
+			}
+		}
+	}
+
+}
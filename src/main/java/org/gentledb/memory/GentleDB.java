@@ -55,15 +55,10 @@ public class GentleDB implements org.gentledb.interfaces.GentleDB {
 	}
 
 	public String addArray(byte[] content) throws GentleDBException {
-		final OutputStream stream = addStream();
-		try {
-			IOUtils.write(content, stream);
-		} catch (IOException e) {
-			throw new GentleDBException(e);
-		} finally {
-			IOUtils.closeQuietly(stream);
+		final String contentId = Utilities.sha256Hex(content);
+		if (!contentDB.containsKey(contentId)) {
+			contentDB.put(contentId, content.clone());
 		}
-		final String contentId = stream.getContentId();
 		return contentId;
 	}
 
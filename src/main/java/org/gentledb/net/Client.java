@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+
+/**
+ * Remote {@link org.gentledb.interfaces.GentleDB} talking to a {@link Server}.
+ *
+ * A client is safe to share between threads.  Requests from different
+ * threads are pipelined over the one connection: each thread only waits for
+ * its own response, not for the requests sent before it.
+ */
+public class Client implements org.gentledb.interfaces.GentleDB {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_MAX_RESPONSE_LENGTH = 64 * 1024 * 1024;
+
+	private Socket socket;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private AtomicInteger nextTag;
+	private Map<Integer, Call> calls;
+	private volatile int maxResponseLength;
+	private volatile GentleDBException failure;
+
+	public Client(InetSocketAddress address) throws GentleDBException {
+		maxResponseLength = DEFAULT_MAX_RESPONSE_LENGTH;
+		nextTag = new AtomicInteger();
+		calls = new ConcurrentHashMap<Integer, Call>();
+		try {
+			socket = new Socket(address.getAddress(), address.getPort());
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+		} catch (IOException e) {
+			IOUtils.closeQuietly(socket);
+			throw new GentleDBException(e);
+		}
+		final Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readResponses();
+			}
+		}, "GentleDB client " + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public Client(String host, int port) throws GentleDBException {
+		this(new InetSocketAddress(host, port));
+	}
+
+	public void close() {
+		fail(new GentleDBException("Client closed"));
+	}
+
+	public int getMaxResponseLength() {
+		return maxResponseLength;
+	}
+
+	/**
+	 * Responses longer than this many bytes, framing included, are skipped
+	 * and their call fails.  A response is buffered whole before it is
+	 * returned, so this bounds the memory one call can claim.
+	 */
+	public void setMaxResponseLength(int maxResponseLength) {
+		if (maxResponseLength < 4 + Protocol.HEADER_LENGTH) {
+			throw new IllegalArgumentException("maxResponseLength too small: " + maxResponseLength);
+		}
+		this.maxResponseLength = maxResponseLength;
+	}
+
+	public OutputStream addStream() throws GentleDBException {
+		return new OutputStream(this);
+	}
+
+	public InputStream getStream(String contentId) throws GentleDBException {
+		return new InputStream(getArray(contentId));
+	}
+
+	public String addArray(byte[] content) throws GentleDBException {
+		return Utilities.hex(call(Protocol.ADD_ARRAY, content, null).payload);
+	}
+
+	public byte[] getArray(String contentId) throws GentleDBException {
+		Utilities.validateIdentifier(contentId);
+		return call(Protocol.GET_ARRAY, Utilities.unhex(contentId), null).payload;
+	}
+
+	@Override
+	public String addString(String content) throws GentleDBException {
+		try {
+			return addArray(content.getBytes("utf-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new GentleDBException(e);
+		}
+	}
+
+	@Override
+	public String getString(String contentId) throws GentleDBException {
+		try {
+			return new String(getArray(contentId), "utf-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new GentleDBException(e);
+		}
+	}
+
+	@Override
+	public void put(String pointerId, String contentId) throws GentleDBException {
+		Utilities.validateIdentifier(pointerId);
+		if (contentId != null) {
+			Utilities.validateIdentifier(contentId);
+			call(Protocol.PUT, Utilities.unhex(pointerId), Utilities.unhex(contentId));
+		} else {  // contentId == null, so remove the pointer
+			call(Protocol.PUT, Utilities.unhex(pointerId), null);
+		}
+	}
+
+	@Override
+	public String get(String pointerId) throws GentleDBException {
+		Utilities.validateIdentifier(pointerId);
+		final Call call = call(Protocol.GET, Utilities.unhex(pointerId), null);
+		if (call.status == Protocol.NOT_FOUND)
+			return null;
+		return Utilities.hex(call.payload);
+	}
+
+	private Call call(int opcode, byte[] payload, byte[] payload2) throws GentleDBException {
+		final int length = payload.length + (payload2 == null ? 0 : payload2.length);
+		if (length > Protocol.MAX_FRAME_LENGTH - Protocol.HEADER_LENGTH) {
+			throw new GentleDBException("Content too large: " + length + " bytes");
+		}
+		final Call call = new Call();
+		final int tag = nextTag.getAndIncrement();
+		calls.put(tag, call);
+		try {
+			synchronized (out) {
+				checkFailure();
+				out.writeInt(Protocol.HEADER_LENGTH + length);
+				out.writeInt(tag);
+				out.write(opcode);
+				out.write(payload);
+				if (payload2 != null) {
+					out.write(payload2);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			calls.remove(tag);
+			fail(new GentleDBException(e));
+			throw failure;
+		} catch (GentleDBException e) {
+			calls.remove(tag);
+			throw e;
+		}
+		call.await();
+		if (call.exception != null) {
+			throw call.exception;
+		}
+		if (call.status == Protocol.ERROR) {
+			try {
+				throw new GentleDBException(new String(call.payload, "utf-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new GentleDBException(e);
+			}
+		}
+		return call;
+	}
+
+	private void checkFailure() throws GentleDBException {
+		if (failure != null) {
+			throw new GentleDBException(failure.getMessage(), failure);
+		}
+	}
+
+	private void readResponses() {
+		try {
+			for (;;) {
+				final int length = in.readInt();
+				if (length < Protocol.HEADER_LENGTH) {
+					throw new IOException("Invalid frame length: " + length);
+				}
+				final int tag = in.readInt();
+				final int status = in.readByte();
+				// the call stays in calls until complete, so that fail() reaches it
+				final Call call = calls.get(tag);
+				if (call == null) {
+					throw new IOException("Unexpected response tag: " + tag);
+				}
+				if (length > maxResponseLength - 4) {
+					IOUtils.skipFully(in, length - Protocol.HEADER_LENGTH);
+					calls.remove(tag);
+					call.complete(-1, null, new GentleDBException("Response too large: " + length + " bytes, at most "
+							+ (maxResponseLength - 4) + " allowed"));
+					continue;
+				}
+				final byte[] payload = new byte[length - Protocol.HEADER_LENGTH];
+				in.readFully(payload);
+				calls.remove(tag);
+				call.complete(status, payload, null);
+			}
+		} catch (IOException e) {
+			fail(new GentleDBException(e));
+		} catch (Throwable e) {  // out of memory, say; whoever waits for a response must not wait forever
+			fail(new GentleDBException("Client failed", e));
+		}
+	}
+
+	private void fail(GentleDBException e) {
+		synchronized (this) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		IOUtils.closeQuietly(socket);
+		for (final Integer tag : calls.keySet()) {
+			final Call call = calls.remove(tag);
+			if (call != null) {
+				call.complete(-1, null, failure);
+			}
+		}
+	}
+
+
+
+	private static class Call {
+
+		private boolean isDone;
+		private int status;
+		private byte[] payload;
+		private GentleDBException exception;
+
+		public synchronized void complete(int status, byte[] payload, GentleDBException exception) {
+			this.status = status;
+			this.payload = payload;
+			this.exception = exception;
+			isDone = true;
+			notifyAll();
+		}
+
+		public synchronized void await() throws GentleDBException {
+			while (!isDone) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new GentleDBException(e);
+				}
+			}
+		}
+	}
+
+	public static class OutputStream extends java.io.OutputStream implements org.gentledb.interfaces.OutputStream {
+
+		private Client client;
+		private String contentId;
+		private ByteArrayOutputStream stream;
+		private boolean isOpen;
+
+		public OutputStream(Client client) {
+			super();
+			this.client = client;
+			stream = new ByteArrayOutputStream();
+			isOpen = true;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			stream.write(b);
+		}
+
+		@Override
+		public void write(byte[] b) throws IOException {
+			stream.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			stream.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!isOpen)
+				return;
+			isOpen = false;
+			try {
+				contentId = client.addArray(stream.toByteArray());
+			} catch (GentleDBException e) {
+				throw new IOException(e);
+			}
+		}
+
+		public String getContentId() throws GentleDBException {
+			if (isOpen) {
+				try {
+					close();
+				} catch (IOException e) {
+					throw new GentleDBException(e);
+				}
+			}
+			return contentId;
+		}
+	}
+
+	public static class InputStream extends ByteArrayInputStream implements org.gentledb.interfaces.InputStream {
+
+		public InputStream(byte[] content) {
+			super(content);
+		}
+	}
+
+}
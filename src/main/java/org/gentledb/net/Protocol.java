@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.net;
+
+/**
+ * Wire format shared by {@link Server} and {@link Client}.
+ *
+ * Every frame starts with an int giving the number of bytes that follow it,
+ * then an int tag chosen by the client.  A request continues with an opcode
+ * byte and its payload, a response with a status byte and its payload.  The
+ * server answers requests in the order they arrive and copies the tag of each
+ * request into its response, so clients may send many requests before reading
+ * any response.  Identifiers travel as their raw 32 bytes.
+ *
+ *   ADD_ARRAY  content                       -> content id
+ *   GET_ARRAY  content id                    -> content
+ *   PUT        pointer id [content id]       -> (empty)
+ *   GET        pointer id                    -> content id, or NOT_FOUND
+ *
+ * PUT without a content id removes the pointer.  ERROR responses carry a
+ * UTF-8 message.  A request longer than the server's limit is answered with
+ * ERROR and the connection is closed.
+ */
+final class Protocol {
+
+	private Protocol() {
+		// No instances please
+	}
+
+	static final int ADD_ARRAY = 1;
+	static final int GET_ARRAY = 2;
+	static final int PUT = 3;
+	static final int GET = 4;
+
+	static final int OK = 0;
+	static final int NOT_FOUND = 1;
+	static final int ERROR = 2;
+
+	static final int ID_LENGTH = 32;
+
+	// tag plus opcode or status
+	static final int HEADER_LENGTH = 4 + 1;
+
+	static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE - 8;
+
+}
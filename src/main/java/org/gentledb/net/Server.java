@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.net;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.io.IOUtils;
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+
+/**
+ * Serves a {@link org.gentledb.interfaces.GentleDB} over the {@link Protocol}.
+ *
+ * All connections are handled by a single selector thread, which is also the
+ * only thread that touches the database, so backends need not be thread-safe.
+ * Content stored by {@link org.gentledb.fs.GentleDB} is sent straight from
+ * the file with {@link FileChannel#transferTo}.
+ *
+ * A connection that fails unexpectedly is closed and reported to the
+ * {@link Listener}; the server keeps serving the others.  An {@link Error}
+ * stops the server and propagates out of {@link #serve()}.
+ */
+public class Server {
+
+	public interface Listener {
+		// called on the server thread; client is null if the connection is gone already
+		public void failed(SocketAddress client, RuntimeException e);
+	}
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	// stop reading from a connection while this many responses are unsent
+	private static final int MAX_PENDING_RESPONSES = 64;
+	private static final int DEFAULT_MAX_REQUEST_LENGTH = 64 * 1024 * 1024;
+
+	private org.gentledb.interfaces.GentleDB db;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private volatile int maxRequestLength;
+	private volatile Listener listener;
+	private volatile boolean isOpen;
+
+	public Server(org.gentledb.interfaces.GentleDB db, InetSocketAddress address) throws GentleDBException {
+		this.db = db;
+		maxRequestLength = DEFAULT_MAX_REQUEST_LENGTH;
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(serverChannel);
+			closeQuietly(selector);
+			throw new GentleDBException(e);
+		}
+		isOpen = true;
+	}
+
+	public Server(org.gentledb.interfaces.GentleDB db, int port) throws GentleDBException {
+		this(db, new InetSocketAddress(port));
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+	}
+
+	public int getMaxRequestLength() {
+		return maxRequestLength;
+	}
+
+	/**
+	 * Requests longer than this many bytes, framing included, get an ERROR
+	 * response, after which the server closes the connection.  A request is
+	 * buffered whole before it is handled, so this bounds the memory one
+	 * connection can claim.
+	 */
+	public void setMaxRequestLength(int maxRequestLength) {
+		if (maxRequestLength < 4 + Protocol.HEADER_LENGTH) {
+			throw new IllegalArgumentException("maxRequestLength too small: " + maxRequestLength);
+		}
+		this.maxRequestLength = maxRequestLength;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * By default, failures go to the uncaught exception handler of the server
+	 * thread, without stopping it.
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public Thread start() {
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					serve();
+				} catch (GentleDBException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "GentleDB server " + getAddress());
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Handles connections on the calling thread until {@link #close()} is
+	 * called.
+	 */
+	public void serve() throws GentleDBException {
+		try {
+			while (isOpen) {
+				selector.select();
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						try {
+							accept();
+						} catch (IOException e) {
+							// the client is gone already, or we are out of file descriptors for now
+						}
+						continue;
+					}
+					final Connection connection = (Connection) key.attachment();
+					// whatever goes wrong with one connection must not stop the others
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						connection.close();
+					} catch (RuntimeException e) {
+						report(connection.getClient(), e);
+						connection.close();
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// close() was called
+		} catch (IOException e) {
+			if (isOpen) {
+				throw new GentleDBException(e);
+			}
+		} finally {
+			shutdown();
+		}
+	}
+
+	public void close() {
+		isOpen = false;
+		selector.wakeup();
+	}
+
+	private void shutdown() {
+		if (selector.isOpen()) {
+			for (final SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+		}
+		IOUtils.closeQuietly(serverChannel);
+		closeQuietly(selector);
+	}
+
+	private static void closeQuietly(Selector selector) {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void report(SocketAddress client, RuntimeException e) {
+		final Listener listener = this.listener;
+		if (listener != null) {
+			listener.failed(client, e);
+		} else {
+			final Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+	}
+
+	private void accept() throws IOException {
+		final SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+	}
+
+	private Response handle(Connection connection, int tag, int opcode, ByteBuffer payload) {
+		try {
+			switch (opcode) {
+			case Protocol.ADD_ARRAY: {
+				final byte[] content = new byte[payload.remaining()];
+				payload.get(content);
+				return Response.ok(tag, Utilities.unhex(db.addArray(content)));
+			}
+			case Protocol.GET_ARRAY: {
+				final String contentId = readId(payload);
+				Utilities.validateIdentifier(contentId);
+				if (db instanceof org.gentledb.fs.GentleDB) {
+					final org.gentledb.fs.GentleDB.InputStream stream = ((org.gentledb.fs.GentleDB) db).getStream(contentId);
+					final FileChannel channel = stream.getChannel();
+					if (channel != null) {
+						return Response.file(tag, channel);
+					}
+					IOUtils.closeQuietly(stream);
+				}
+				return Response.ok(tag, db.getArray(contentId));
+			}
+			case Protocol.PUT: {
+				final String pointerId = readId(payload);
+				final String contentId = payload.hasRemaining() ? readId(payload) : null;
+				db.put(pointerId, contentId);
+				return Response.ok(tag, new byte[0]);
+			}
+			case Protocol.GET: {
+				final String contentId = db.get(readId(payload));
+				if (contentId == null) {
+					return Response.status(tag, Protocol.NOT_FOUND, new byte[0]);
+				}
+				return Response.ok(tag, Utilities.unhex(contentId));
+			}
+			default:
+				return Response.error(tag, "Invalid opcode: " + opcode);
+			}
+		} catch (GentleDBException e) {
+			return Response.error(tag, e.toString());
+		} catch (IOException e) {
+			return Response.error(tag, e.toString());
+		} catch (RuntimeException e) {  // a bug in the backend rather than a failed request
+			report(connection.getClient(), e);
+			return Response.error(tag, e.toString());
+		}
+	}
+
+	private static String readId(ByteBuffer payload) throws GentleDBException {
+		if (payload.remaining() < Protocol.ID_LENGTH) {
+			throw new GentleDBException("Truncated identifier");
+		}
+		final byte[] id = new byte[Protocol.ID_LENGTH];
+		payload.get(id);
+		return Utilities.hex(id);
+	}
+
+
+
+	private static class Response {
+
+		private ByteBuffer[] buffers;
+		private FileChannel file;
+		private long filePosition;
+		private long fileRemaining;
+
+		public static Response status(int tag, int status, byte[] payload) {
+			final Response response = new Response();
+			response.buffers = new ByteBuffer[] { header(tag, status, payload.length), ByteBuffer.wrap(payload) };
+			return response;
+		}
+
+		public static Response ok(int tag, byte[] payload) {
+			return status(tag, Protocol.OK, payload);
+		}
+
+		public static Response error(int tag, String message) {
+			try {
+				return status(tag, Protocol.ERROR, message.getBytes("utf-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public static Response file(int tag, FileChannel file) throws IOException {
+			final long size = file.size();
+			if (size > Protocol.MAX_FRAME_LENGTH - Protocol.HEADER_LENGTH) {
+				IOUtils.closeQuietly(file);
+				return error(tag, "Content too large: " + size + " bytes");
+			}
+			final Response response = new Response();
+			response.buffers = new ByteBuffer[] { header(tag, Protocol.OK, (int) size) };
+			response.file = file;
+			response.filePosition = 0;
+			response.fileRemaining = size;
+			return response;
+		}
+
+		private static ByteBuffer header(int tag, int status, int payloadLength) {
+			final ByteBuffer header = ByteBuffer.allocate(4 + Protocol.HEADER_LENGTH);
+			header.putInt(Protocol.HEADER_LENGTH + payloadLength);
+			header.putInt(tag);
+			header.put((byte) status);
+			header.flip();
+			return header;
+		}
+
+		// returns true once the whole response has been written
+		public boolean write(SocketChannel channel) throws IOException {
+			if (hasRemaining(buffers)) {
+				channel.write(buffers);
+				if (hasRemaining(buffers))
+					return false;
+			}
+			while (fileRemaining > 0) {
+				final long n = file.transferTo(filePosition, fileRemaining, channel);
+				if (n <= 0)
+					return false;
+				filePosition += n;
+				fileRemaining -= n;
+			}
+			return true;
+		}
+
+		private static boolean hasRemaining(ByteBuffer[] buffers) {
+			for (final ByteBuffer buffer : buffers) {
+				if (buffer.hasRemaining())
+					return true;
+			}
+			return false;
+		}
+
+		public void close() {
+			IOUtils.closeQuietly(file);
+		}
+	}
+
+	private class Connection {
+
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer;
+		private LinkedList<Response> responses;
+		// set after rejecting a request, the connection closes once its responses are sent
+		private boolean isClosing;
+
+		public Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			responses = new LinkedList<Response>();
+		}
+
+		public SocketAddress getClient() {
+			return channel.socket().getRemoteSocketAddress();
+		}
+
+		public void read() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+			write();
+		}
+
+		private void handleFrames() throws IOException {
+			readBuffer.flip();
+			while (!isClosing && responses.size() < MAX_PENDING_RESPONSES && readBuffer.remaining() >= 4) {
+				final int length = readBuffer.getInt(readBuffer.position());
+				if (length < Protocol.HEADER_LENGTH) {
+					throw new IOException("Invalid frame length: " + length);
+				}
+				if (length > maxRequestLength - 4) {
+					if (readBuffer.remaining() < 8)
+						break;  // wait for the tag
+					final int tag = readBuffer.getInt(readBuffer.position() + 4);
+					responses.add(Response.error(tag, "Request too large: " + length + " bytes, at most "
+							+ (maxRequestLength - 4) + " allowed"));
+					isClosing = true;
+					readBuffer.position(readBuffer.limit());
+					break;
+				}
+				if (readBuffer.remaining() - 4 < length) {
+					if (readBuffer.capacity() - 4 < length) {
+						final ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+						buffer.put(readBuffer);
+						buffer.flip();
+						readBuffer = buffer;
+					}
+					break;
+				}
+				readBuffer.getInt();
+				final int tag = readBuffer.getInt();
+				final int opcode = readBuffer.get();
+				final int end = readBuffer.position() + length - Protocol.HEADER_LENGTH;
+				final int limit = readBuffer.limit();
+				readBuffer.limit(end);
+				final ByteBuffer payload = readBuffer.slice();
+				readBuffer.limit(limit);
+				readBuffer.position(end);
+				responses.add(handle(this, tag, opcode, payload));
+			}
+			readBuffer.compact();
+			// shrink back once no oversized frame is pending
+			if (readBuffer.capacity() > READ_BUFFER_SIZE
+					&& (readBuffer.position() < 4 || 4 + readBuffer.getInt(0) <= READ_BUFFER_SIZE)) {
+				readBuffer.flip();
+				final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				buffer.put(readBuffer);
+				readBuffer = buffer;
+			}
+		}
+
+		public void write() throws IOException {
+			boolean progress = true;
+			while (progress) {
+				while (!responses.isEmpty() && responses.getFirst().write(channel)) {
+					responses.removeFirst().close();
+				}
+				progress = false;
+				// handle frames read but held back while too many responses were pending
+				if (!isClosing && responses.size() < MAX_PENDING_RESPONSES && readBuffer.position() > 0) {
+					final int pending = responses.size();
+					handleFrames();
+					progress = responses.size() > pending;
+				}
+			}
+			if (isClosing && responses.isEmpty()) {
+				close();
+				return;
+			}
+			int ops = 0;
+			if (!isClosing && responses.size() < MAX_PENDING_RESPONSES)
+				ops |= SelectionKey.OP_READ;
+			if (!responses.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		public void close() {
+			key.cancel();
+			IOUtils.closeQuietly(channel);
+			for (final Response response : responses) {
+				response.close();
+			}
+			responses.clear();
+		}
+	}
+
+}
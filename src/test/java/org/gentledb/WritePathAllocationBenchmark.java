@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.commons.io.FileUtils;
+import org.gentledb.interfaces.GentleDB;
+
+/**
+ * Measures bytes allocated per addArray() of a small blob, for new and for
+ * already stored content, on both backends.  Not run by the test suite:
+ *
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.gentledb.WritePathAllocationBenchmark
+ *
+ * Needs a HotSpot-compatible JVM for per-thread allocation counters.
+ */
+public class WritePathAllocationBenchmark {
+
+	private static final int WARMUP = 2000;
+
+	public static void main(String[] args) throws Exception {
+		final File directory = File.createTempFile("gentledb-benchmark", "");
+		directory.delete();
+		try {
+			run("fs", new org.gentledb.fs.GentleDB(directory), 20000);
+			run("memory", new org.gentledb.memory.GentleDB(), 40000);
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	private static void run(String name, GentleDB db, int count) throws Exception {
+		final byte[][] blobs = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			blobs[i] = ("small blob number " + i + " with some padding text").getBytes("utf-8");
+		}
+		for (int i = 0; i < WARMUP; i++) {
+			db.addArray(("warmup " + i).getBytes("utf-8"));
+		}
+		measure(name + " new", db, blobs);
+		measure(name + " existing", db, blobs);
+	}
+
+	private static void measure(String name, GentleDB db, byte[][] blobs) throws Exception {
+		final long startNanos = System.nanoTime();
+		final long startBytes = allocatedBytes();
+		for (final byte[] blob : blobs) {
+			db.addArray(blob);
+		}
+		final long bytes = allocatedBytes() - startBytes;
+		final long nanos = System.nanoTime() - startNanos;
+		System.out.printf("%-16s %7d B/op %9.1f us/op%n", name, bytes / blobs.length, nanos / 1000.0 / blobs.length);
+	}
+
+	// com.sun.management.ThreadMXBean, looked up reflectively so this compiles on any JDK
+	private static long allocatedBytes() throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+		return (Long) method.invoke(threads, Thread.currentThread().getId());
+	}
+
+}
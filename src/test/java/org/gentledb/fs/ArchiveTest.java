@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private void roundTrip(boolean compress) throws Exception {
+		final GentleDB source = new GentleDB(folder.newFolder("source"));
+		final List<String> pointerIds = new ArrayList<String>();
+		final List<String> contentIds = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			final String pointerId = Utilities.random();
+			final String contentId = source.addString("content " + i);
+			source.put(pointerId, contentId);
+			pointerIds.add(pointerId);
+			contentIds.add(contentId);
+		}
+		final byte[] large = new byte[3 * 1024 * 1024];
+		new Random(1).nextBytes(large);
+		final String largeId = source.addArray(large);
+
+		final GentleDB target = new GentleDB(folder.newFolder("target"));
+		target.addString("content 5");
+
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		Archive.Summary summary = new Archive(source).exportTo(archive, compress);
+		assertEquals(201, summary.getContentWritten());
+		assertEquals(200, summary.getPointers());
+
+		summary = new Archive(target).importFrom(new ByteArrayInputStream(archive.toByteArray()));
+		assertEquals(200, summary.getContentWritten());
+		assertEquals(1, summary.getContentSkipped());
+		assertEquals(200, summary.getPointers());
+		for (int i = 0; i < pointerIds.size(); i++) {
+			assertEquals(contentIds.get(i), target.get(pointerIds.get(i)));
+			assertEquals("content " + i, target.getString(contentIds.get(i)));
+		}
+		assertArrayEquals(large, target.getArray(largeId));
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		roundTrip(false);
+	}
+
+	@Test
+	public void compressedRoundTrip() throws Exception {
+		roundTrip(true);
+	}
+
+	@Test
+	public void rejectsCorruptContent() throws Exception {
+		final GentleDB source = new GentleDB(folder.newFolder("source"));
+		final byte[] content = new byte[4096];
+		new Random(2).nextBytes(content);
+		source.addArray(content);
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		new Archive(source).exportTo(archive, false);
+		final byte[] bytes = archive.toByteArray();
+		bytes[bytes.length / 2] ^= 1;
+
+		final GentleDB target = new GentleDB(folder.newFolder("target"));
+		try {
+			new Archive(target).importFrom(new ByteArrayInputStream(bytes));
+			fail("corrupt content was imported");
+		} catch (GentleDBException e) {
+			// expected
+		}
+		assertEquals(0, new File(target.getDirectory(), "tmp").list().length);
+		assertEquals(0, target.getContentDir().list().length);
+	}
+
+	@Test
+	public void skipsMalformedPointers() throws Exception {
+		final GentleDB source = new GentleDB(folder.newFolder("source"));
+		final String goodPointerId = Utilities.random();
+		final String contentId = source.addString("content");
+		source.put(goodPointerId, contentId);
+		final String badPointerId = Utilities.random();
+		source.put(badPointerId, contentId);
+		// what a concurrent put() can leave behind for a moment
+		final File badPointerFile = new File(source.getPointerDir(), badPointerId.substring(0, 2) + "/"
+				+ badPointerId.substring(2, 4) + "/" + badPointerId.substring(4, 7) + "/" + badPointerId.substring(7));
+		new FileOutputStream(badPointerFile).close();
+
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		final Archive.Summary summary = new Archive(source).exportTo(archive, false);
+		assertEquals(1, summary.getPointers());
+		assertEquals(1, summary.getPointersSkipped());
+
+		final GentleDB target = new GentleDB(folder.newFolder("target"));
+		new Archive(target).importFrom(new ByteArrayInputStream(archive.toByteArray()));
+		assertEquals(contentId, target.get(goodPointerId));
+		assertEquals("content", target.getString(contentId));
+	}
+
+}
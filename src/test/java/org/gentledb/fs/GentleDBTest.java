@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GentleDBTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recreatesRemovedDirectories() throws Exception {
+		final GentleDB db = new GentleDB(folder.newFolder("db"));
+		final String contentId = db.addString("content");
+		final String pointerId = contentId;  // same fan-out prefix in pointer_db
+		db.put(pointerId, contentId);
+		// what a cleanup or restore by hand can do behind the back of a running instance
+		final File contentPrefixDir = new File(db.getContentDir(), contentId.substring(0, 2));
+		final File pointerPrefixDir = new File(db.getPointerDir(), pointerId.substring(0, 2));
+		FileUtils.deleteDirectory(contentPrefixDir);
+		FileUtils.deleteDirectory(pointerPrefixDir);
+		assertFalse(contentPrefixDir.exists());
+
+		assertEquals(contentId, db.addString("content"));
+		assertEquals("content", db.getString(contentId));
+		db.put(pointerId, contentId);
+		assertEquals(contentId, db.get(pointerId));
+
+		FileUtils.deleteDirectory(contentPrefixDir);
+		final GentleDB.OutputStream stream = db.addStream();
+		stream.write("content".getBytes("utf-8"));
+		stream.close();
+		assertEquals(contentId, stream.getContentId());
+		assertEquals("content", db.getString(contentId));
+	}
+
+}
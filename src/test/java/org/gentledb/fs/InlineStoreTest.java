@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InlineStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int HEADER_LENGTH = 1 + 32 + 4;
+
+	private GentleDB open(File directory) throws GentleDBException {
+		final GentleDB db = new GentleDB(directory);
+		db.setInlineThreshold(100);
+		return db;
+	}
+
+	private static byte[] bytes(int length) {
+		final byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) i;
+		}
+		return content;
+	}
+
+	private static String addStream(GentleDB db, byte[] content) throws Exception {
+		final GentleDB.OutputStream stream = db.addStream();
+		stream.write(content);
+		stream.close();
+		return stream.getContentId();
+	}
+
+	@Test
+	public void survivesReopen() throws Exception {
+		final File directory = folder.newFolder("db");
+		GentleDB db = open(directory);
+		final String contentId = db.addString("small");
+		assertEquals(0, db.getContentDir().list().length);
+
+		db = new GentleDB(directory);  // inline content stays readable with the default threshold
+		assertEquals("small", db.getString(contentId));
+		assertArrayEquals("small".getBytes("utf-8"), IOUtils.toByteArray(db.getStream(contentId)));
+	}
+
+	@Test
+	public void streamsAtTheThreshold() throws Exception {
+		final GentleDB db = open(folder.newFolder("db"));
+		final String belowId = addStream(db, bytes(99));
+		final String atId = addStream(db, bytes(100));
+		final String aboveId = addStream(db, bytes(110));
+		final InlineStore store = db.getInlineStore();
+		assertTrue(store.contains(belowId));
+		assertFalse(store.contains(atId));
+		assertFalse(store.contains(aboveId));
+		assertArrayEquals(bytes(99), db.getArray(belowId));
+		assertArrayEquals(bytes(100), db.getArray(atId));
+		assertArrayEquals(bytes(110), db.getArray(aboveId));
+		assertEquals(0, new File(db.getDirectory(), "tmp").list().length);
+	}
+
+	@Test
+	public void thresholdIsBounded() throws Exception {
+		final GentleDB db = new GentleDB(folder.newFolder("db"));
+		try {
+			db.setInlineThreshold(64 * 1024 + 1);
+			fail("oversized threshold was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		db.setInlineThreshold(64 * 1024);
+		// a byte at a time, so the buffer grows on the way
+		final byte[] content = bytes(64 * 1024 - 1);
+		final GentleDB.OutputStream stream = db.addStream();
+		for (final byte b : content) {
+			stream.write(b);
+		}
+		stream.close();
+		assertTrue(db.getInlineStore().contains(stream.getContentId()));
+		assertArrayEquals(content, db.getArray(stream.getContentId()));
+		final String fileId = addStream(db, bytes(64 * 1024));
+		assertFalse(db.getInlineStore().contains(fileId));
+		assertArrayEquals(bytes(64 * 1024), db.getArray(fileId));
+	}
+
+	@Test
+	public void sharedBetweenInstances() throws Exception {
+		final File directory = folder.newFolder("db");
+		final GentleDB reader = new GentleDB(directory);  // opened before inline_db exists
+		final GentleDB a = open(directory);
+		final GentleDB b = open(directory);
+		final String aId = a.addString("from A");
+		final String bId = b.addString("from B!");
+		assertEquals("from B!", a.getString(bId));
+		assertEquals("from A", b.getString(aId));
+		assertEquals("from A", reader.getString(aId));
+		assertEquals("from B!", reader.getString(bId));
+
+		final List<String> contentIds = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			contentIds.add((i % 2 == 0 ? a : b).addString("content " + i));
+		}
+		final GentleDB reopened = new GentleDB(directory);
+		assertEquals("from A", reopened.getString(aId));
+		assertEquals("from B!", reopened.getString(bId));
+		for (int i = 0; i < contentIds.size(); i++) {
+			assertEquals("content " + i, reopened.getString(contentIds.get(i)));
+		}
+	}
+
+	@Test
+	public void indexSurvivesGrowthAndRemoval() throws Exception {
+		final File file = new File(folder.getRoot(), "inline_db");
+		InlineStore store = new InlineStore(file);
+		final List<String> contentIds = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			final byte[] content = ("content " + i).getBytes("utf-8");
+			final String contentId = Utilities.sha256Hex(content);
+			assertTrue(store.add(contentId, content, 0, content.length));
+			contentIds.add(contentId);
+		}
+		for (int i = 0; i < contentIds.size(); i += 3) {
+			store.remove(contentIds.get(i));
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < contentIds.size(); i++) {
+				if (i % 3 == 0) {
+					assertNull(store.get(contentIds.get(i)));
+				} else {
+					assertEquals("content " + i, new String(store.get(contentIds.get(i)), "utf-8"));
+				}
+			}
+			assertEquals(contentIds.size() - (contentIds.size() + 2) / 3, store.contentIds().size());
+			store = new InlineStore(file);
+		}
+	}
+
+	@Test
+	public void recoversFromTornAppend() throws Exception {
+		final File directory = folder.newFolder("db");
+		final String firstId = open(directory).addString("first");
+		final File inlineFile = new File(directory, "inline_db");
+		// what a crash in the middle of appending a record leaves behind
+		final RandomAccessFile file = new RandomAccessFile(inlineFile, "rw");
+		try {
+			file.seek(HEADER_LENGTH + 5 + 1);
+			file.write(Utilities.unhex(Utilities.random()));
+			file.writeInt(7);
+			file.write("partial".getBytes("utf-8"), 0, 3);
+		} finally {
+			file.close();
+		}
+
+		GentleDB db = open(directory);
+		assertEquals("first", db.getString(firstId));
+		final String xId = db.addString("x");
+		db = open(directory);
+		assertEquals("first", db.getString(firstId));
+		assertEquals("x", db.getString(xId));
+		assertEquals(2, db.getInlineStore().contentIds().size());
+	}
+
+	@Test
+	public void removesCorruptContent() throws Exception {
+		final GentleDB db = open(folder.newFolder("db"));
+		final String contentId = db.addString("inline content");
+		final RandomAccessFile file = new RandomAccessFile(new File(db.getDirectory(), "inline_db"), "rw");
+		try {
+			file.seek(HEADER_LENGTH);
+			file.write('I');
+		} finally {
+			file.close();
+		}
+
+		final List<String> corrupt = new ArrayList<String>();
+		final Scrubber scrubber = new Scrubber(db, new Scrubber.Listener() {
+			public void verified(String contentId, long size) {
+			}
+
+			public void corrupt(String contentId, String actualId, File quarantineFile) {
+				corrupt.add(contentId);
+				assertTrue(quarantineFile.exists());
+			}
+
+			public void failed(String contentId, GentleDBException e) {
+			}
+
+			public void checkpoint(String contentId, long scrubbed) {
+			}
+		});
+		scrubber.scrub();
+		assertEquals(1, corrupt.size());
+		assertEquals(contentId, corrupt.get(0));
+		assertFalse(db.getInlineStore().contains(contentId));
+		assertNull(db.getInlineStore().get(contentId));
+		assertFalse(open(db.getDirectory()).getInlineStore().contains(contentId));
+	}
+
+	@Test
+	public void archivesInlineContent() throws Exception {
+		final GentleDB source = open(folder.newFolder("source"));
+		final String smallId = source.addString("small");
+		final String largeId = source.addArray(bytes(1000));
+		final String pointerId = Utilities.random();
+		source.put(pointerId, smallId);
+
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		final Archive.Summary summary = new Archive(source).exportTo(archive, false);
+		assertEquals(2, summary.getContentWritten());
+
+		final GentleDB target = new GentleDB(folder.newFolder("target"));
+		new Archive(target).importFrom(new ByteArrayInputStream(archive.toByteArray()));
+		assertEquals(smallId, target.get(pointerId));
+		assertEquals("small", target.getString(smallId));
+		assertArrayEquals(bytes(1000), target.getArray(largeId));
+	}
+
+}
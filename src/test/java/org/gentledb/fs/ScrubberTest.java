@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.gentledb.Utilities.GentleDBException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScrubberTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static class RecordingListener implements Scrubber.Listener {
+
+		private List<String> verified = new ArrayList<String>();
+		private List<String> corrupt = new ArrayList<String>();
+		private List<String> failed = new ArrayList<String>();
+		private List<String> checkpoints = new ArrayList<String>();
+
+		public void verified(String contentId, long size) {
+			verified.add(contentId);
+		}
+
+		public void corrupt(String contentId, String actualId, File quarantineFile) {
+			corrupt.add(contentId);
+		}
+
+		public void failed(String contentId, GentleDBException e) {
+			failed.add(contentId);
+		}
+
+		public void checkpoint(String contentId, long scrubbed) {
+			checkpoints.add(contentId);
+		}
+	}
+
+	private static File contentFile(GentleDB db, String contentId) {
+		return new File(db.getContentDir(), contentId.substring(0, 2) + "/" + contentId.substring(2, 4) + "/"
+				+ contentId.substring(4, 7) + "/" + contentId.substring(7));
+	}
+
+	private static void overwrite(File file, String content) throws Exception {
+		file.setWritable(true, true);
+		final FileOutputStream stream = new FileOutputStream(file);
+		try {
+			IOUtils.write(content, stream, "utf-8");
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void quarantinesCorruptContent() throws Exception {
+		final GentleDB db = new GentleDB(folder.newFolder("db"));
+		String corruptId = null;
+		for (int i = 0; i < 600; i++) {
+			final String contentId = db.addString("content " + i);
+			if (i == 77) {
+				corruptId = contentId;
+			}
+		}
+		final File file = contentFile(db, corruptId);
+		overwrite(file, "rot");
+
+		final RecordingListener listener = new RecordingListener();
+		final Scrubber scrubber = new Scrubber(db, listener);
+		scrubber.setThreads(4);
+		assertEquals(600, scrubber.scrub());
+		assertEquals(599, listener.verified.size());
+		assertEquals(1, listener.corrupt.size());
+		assertEquals(corruptId, listener.corrupt.get(0));
+		assertTrue(listener.failed.isEmpty());
+		assertFalse(listener.checkpoints.isEmpty());
+		assertFalse(file.exists());
+		assertTrue(new File(scrubber.getQuarantineDirectory(), corruptId).exists());
+		assertFalse(new File(db.getDirectory(), "scrub_state").exists());
+	}
+
+	@Test
+	public void keepsEarlierQuarantinedCopies() throws Exception {
+		final GentleDB db = new GentleDB(folder.newFolder("db"));
+		final String contentId = db.addString("content");
+		final Scrubber scrubber = new Scrubber(db, new RecordingListener());
+		overwrite(contentFile(db, contentId), "rot");
+		scrubber.scrub();
+		db.addString("content");
+		overwrite(contentFile(db, contentId), "more rot");
+		scrubber.scrub();
+
+		final File quarantineDir = scrubber.getQuarantineDirectory();
+		assertEquals("rot", FileUtils.readFileToString(new File(quarantineDir, contentId), "utf-8"));
+		assertEquals("more rot", FileUtils.readFileToString(new File(quarantineDir, contentId + ".1"), "utf-8"));
+	}
+
+	@Test
+	public void resumesAfterCheckpoint() throws Exception {
+		final GentleDB db = new GentleDB(folder.newFolder("db"));
+		for (int i = 0; i < 300; i++) {
+			db.addString("content " + i);
+		}
+		final String checkpoint = "8000000000000000000000000000000000000000000000000000000000000000";
+		overwrite(new File(db.getDirectory(), "scrub_state"), checkpoint);
+
+		final RecordingListener listener = new RecordingListener();
+		final long scrubbed = new Scrubber(db, listener).scrub();
+		assertTrue(scrubbed > 0 && scrubbed < 300);
+		for (final String contentId : listener.verified) {
+			assertTrue(contentId.compareTo(checkpoint) > 0);
+		}
+
+		// the finished pass removed the checkpoint, so the next one covers everything
+		assertEquals(300, new Scrubber(db, new RecordingListener()).scrub());
+	}
+
+}
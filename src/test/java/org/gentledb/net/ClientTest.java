@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+import org.junit.Test;
+
+public class ClientTest {
+
+	@Test(timeout = 30000)
+	public void oversizedResponseFailsOnlyItsCall() throws Exception {
+		final Server server = new Server(new org.gentledb.memory.GentleDB(), new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), 0));
+		final Thread serverThread = server.start();
+		final Client client = new Client(server.getAddress());
+		try {
+			final String largeId = client.addArray(new byte[64 * 1024]);
+			client.setMaxResponseLength(1024);
+			try {
+				client.getArray(largeId);
+				fail("oversized response was accepted");
+			} catch (GentleDBException e) {
+				// expected
+			}
+			assertEquals("content", client.getString(client.addString("content")));
+		} finally {
+			client.close();
+			server.close();
+			serverThread.join(5000);
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void readerFailureFailsPendingCalls() throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final Thread serverThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = serverSocket.accept();
+					final DataInputStream in = new DataInputStream(socket.getInputStream());
+					final byte[] request = new byte[in.readInt()];
+					in.readFully(request);
+					// announce close to 2 GB, which the client either fails to allocate or never gets
+					final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeInt(Integer.MAX_VALUE);
+					out.write(request, 0, 4);
+					out.write(Protocol.OK);
+					out.flush();
+					socket.close();
+				} catch (Exception e) {
+					// the test fails on the client side then
+				}
+			}
+		};
+		serverThread.start();
+		final Client client = new Client(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+		client.setMaxResponseLength(Integer.MAX_VALUE);
+		try {
+			try {
+				client.getArray(Utilities.random());
+				fail("response was read");
+			} catch (GentleDBException e) {
+				// expected
+			}
+			try {
+				client.addString("content");
+				fail("failed client was used");
+			} catch (GentleDBException e) {
+				// expected
+			}
+		} finally {
+			client.close();
+			serverSocket.close();
+			serverThread.join(5000);
+		}
+	}
+
+}
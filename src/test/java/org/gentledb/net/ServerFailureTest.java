@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.gentledb.Utilities.GentleDBException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerFailureTest {
+
+	// a backend with bugs on demand
+	private static class FaultyGentleDB extends org.gentledb.memory.GentleDB {
+
+		public FaultyGentleDB() throws GentleDBException {
+			super();
+		}
+
+		@Override
+		public String addArray(byte[] content) throws GentleDBException {
+			final String command = new String(content);
+			if (command.equals("runtime")) {
+				throw new IllegalStateException("backend bug");
+			}
+			if (command.equals("error")) {
+				throw new AssertionError("backend broken");
+			}
+			return super.addArray(content);
+		}
+	}
+
+	private Server server;
+	private Thread serverThread;
+	private List<RuntimeException> failures;
+	private volatile Throwable uncaught;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new Server(new FaultyGentleDB(), new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		failures = new CopyOnWriteArrayList<RuntimeException>();
+		server.setListener(new Server.Listener() {
+			public void failed(SocketAddress client, RuntimeException e) {
+				failures.add(e);
+			}
+		});
+		serverThread = server.start();
+		serverThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread thread, Throwable e) {
+				uncaught = e;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		serverThread.join(5000);
+	}
+
+	@Test
+	public void runtimeExceptionIsReported() throws Exception {
+		final Client client = new Client(server.getAddress());
+		try {
+			try {
+				client.addString("runtime");
+				fail("failed request succeeded");
+			} catch (GentleDBException e) {
+				assertTrue(e.getMessage().contains("backend bug"));
+			}
+			assertEquals(1, failures.size());
+			assertTrue(failures.get(0) instanceof IllegalStateException);
+			assertEquals("content", client.getString(client.addString("content")));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void errorStopsServer() throws Exception {
+		final Client client = new Client(server.getAddress());
+		try {
+			client.addString("error");
+			fail("failed request succeeded");
+		} catch (GentleDBException e) {
+			// expected, the connection is gone
+		} finally {
+			client.close();
+		}
+		serverThread.join(5000);
+		assertFalse(serverThread.isAlive());
+		assertTrue(uncaught instanceof AssertionError);
+	}
+
+}
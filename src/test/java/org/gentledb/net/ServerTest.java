@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2011  Felix Rabe  (www.felixrabe.net)
+ *
+ * GentleDB is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * GentleDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with GentleDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gentledb.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.gentledb.Utilities;
+import org.gentledb.Utilities.GentleDBException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class ServerTest {
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> backends() {
+		return Arrays.asList(new Object[][] { { "fs" }, { "memory" } });
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String backend;
+	private Server server;
+	private Thread serverThread;
+	private Client client;
+
+	public ServerTest(String backend) {
+		this.backend = backend;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		final org.gentledb.interfaces.GentleDB db;
+		if (backend.equals("fs")) {
+			db = new org.gentledb.fs.GentleDB(folder.newFolder("db"));
+		} else {
+			db = new org.gentledb.memory.GentleDB();
+		}
+		server = new Server(db, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		server.setMaxRequestLength(1024 * 1024);
+		serverThread = server.start();
+		client = new Client(server.getAddress());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.close();
+		serverThread.join(5000);
+		assertTrue(!serverThread.isAlive());
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		final byte[] content = new byte[512 * 1024];
+		new Random(1).nextBytes(content);
+		final String contentId = client.addArray(content);
+		assertEquals(Utilities.sha256Hex(content), contentId);
+		assertArrayEquals(content, client.getArray(contentId));
+
+		final String emptyId = client.addArray(new byte[0]);
+		assertEquals(0, client.getArray(emptyId).length);
+
+		final String pointerId = Utilities.random();
+		client.put(pointerId, contentId);
+		assertEquals(contentId, client.get(pointerId));
+
+		final Client.OutputStream stream = client.addStream();
+		stream.write("streamed".getBytes("utf-8"));
+		stream.close();
+		assertEquals("streamed", client.getString(stream.getContentId()));
+	}
+
+	@Test
+	public void missingPointer() throws Exception {
+		final String pointerId = Utilities.random();
+		if (backend.equals("memory")) {
+			// NOT_FOUND
+			assertNull(client.get(pointerId));
+			client.put(pointerId, client.addString("content"));
+			client.put(pointerId, null);
+			assertNull(client.get(pointerId));
+		} else {
+			// fs.GentleDB reports missing pointers as an error, which travels as ERROR
+			try {
+				client.get(pointerId);
+				fail("missing pointer was found");
+			} catch (GentleDBException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void missingContentIsAnError() throws Exception {
+		try {
+			client.getArray(Utilities.random());
+			fail("missing content was found");
+		} catch (GentleDBException e) {
+			// expected
+		}
+		// the connection is still usable afterwards
+		assertEquals("content", client.getString(client.addString("content")));
+	}
+
+	@Test
+	public void pipelinedCallers() throws Exception {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final int thread = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 300; j++) {
+							final String content = "thread " + thread + " content " + j;
+							final String contentId = client.addString(content);
+							assertEquals(content, client.getString(contentId));
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	@Test
+	public void pipelinedRawRequests() throws Exception {
+		final Socket socket = connect();
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			// far more requests than the server answers before it stops reading
+			for (int tag = 0; tag < 2000; tag++) {
+				final byte[] content = ("content " + tag).getBytes("utf-8");
+				out.writeInt(Protocol.HEADER_LENGTH + content.length);
+				out.writeInt(tag);
+				out.write(Protocol.ADD_ARRAY);
+				out.write(content);
+			}
+			out.flush();
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			for (int tag = 0; tag < 2000; tag++) {
+				final int length = in.readInt();
+				assertEquals(tag, in.readInt());
+				assertEquals(Protocol.OK, in.read());
+				final byte[] contentId = new byte[length - Protocol.HEADER_LENGTH];
+				in.readFully(contentId);
+				assertEquals(Utilities.sha256Hex(("content " + tag).getBytes("utf-8")), Utilities.hex(contentId));
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void malformedFrameClosesOnlyThatConnection() throws Exception {
+		final Socket socket = connect();
+		try {
+			final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(2);  // shorter than any request
+			out.writeInt(0);
+			out.flush();
+			assertClosed(socket);
+		} finally {
+			socket.close();
+		}
+		assertEquals("content", client.getString(client.addString("content")));
+	}
+
+	@Test
+	public void oversizedRequestIsRejected() throws Exception {
+		final Socket socket = connect();
+		try {
+			final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(Integer.MAX_VALUE - 8);
+			out.writeInt(42);
+			out.write(Protocol.ADD_ARRAY);
+			out.flush();
+			final DataInputStream in = new DataInputStream(socket.getInputStream());
+			final int length = in.readInt();
+			assertEquals(42, in.readInt());
+			assertEquals(Protocol.ERROR, in.read());
+			in.readFully(new byte[length - Protocol.HEADER_LENGTH]);
+			assertClosed(socket);
+		} finally {
+			socket.close();
+		}
+		// through the client, and the server keeps serving everyone else
+		final Client other = new Client(server.getAddress());
+		try {
+			other.addArray(new byte[2 * 1024 * 1024]);
+			fail("oversized request was accepted");
+		} catch (GentleDBException e) {
+			// expected
+		} finally {
+			other.close();
+		}
+		assertEquals("content", client.getString(client.addString("content")));
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static void assertClosed(Socket socket) throws IOException {
+		try {
+			assertEquals(-1, socket.getInputStream().read());
+		} catch (EOFException e) {
+			// closed as well
+		} catch (java.net.SocketException e) {
+			// reset by the server
+		}
+	}
+
+}